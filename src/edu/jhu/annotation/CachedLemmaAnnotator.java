@@ -0,0 +1,98 @@
+//
+// These are the tools used to annotate Annotated Gigaword (Napoles,
+// Gormley, and Van Durme, 2012) using a modified Stanford CoreNLP
+// pipeline. The current version here is StanfordCoreNLP v.1.3.2. The
+// primary modification is to use parse trees as input (instead of
+// parsing sentences using the Stanford parser/grammar). The pipeline
+// is also modified to print the root dependency.
+//
+// CachedLemmaAnnotator memoizes the lemma of each (word, POS) pair. The
+// distinct pairs of a document that are not cached are lemmatized with
+// a single call to the wrapped morpha annotator.
+//
+
+package edu.jhu.annotation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.ling.CoreAnnotations.*;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+
+public class CachedLemmaAnnotator implements Annotator {
+	Annotator morpha;
+	MemoCache<String, String> cache;
+
+	/**
+	 * @param morpha
+	 * @param cache
+	 *            may be shared with other instances
+	 */
+	public CachedLemmaAnnotator(Annotator morpha, MemoCache<String, String> cache) {
+		this.morpha = morpha;
+		this.cache = cache;
+	}
+
+	public MemoCache<String, String> getCache() {
+		return cache;
+	}
+
+	public void annotate(Annotation document) {
+		List<CoreLabel> tokens = new ArrayList<CoreLabel>();
+		for (CoreMap sentence : document.get(SentencesAnnotation.class)) {
+			tokens.addAll(sentence.get(TokensAnnotation.class));
+		}
+		// lemmas of the pairs looked up so far, so that each distinct pair
+		// goes to the shared cache once per document
+		Map<String, String> lemmas = new HashMap<String, String>();
+		// first token of each uncached pair, which morpha will annotate
+		Map<String, CoreLabel> misses = new HashMap<String, CoreLabel>();
+		List<String> keys = new ArrayList<String>(tokens.size());
+		for (CoreLabel token : tokens) {
+			// tags never contain spaces, so the key is unambiguous
+			String key = token.get(PartOfSpeechAnnotation.class) + " "
+					+ token.get(TextAnnotation.class);
+			keys.add(key);
+			if (lemmas.containsKey(key) || misses.containsKey(key)) {
+				// morpha is called at most once for it, so this is a hit too
+				cache.countHit();
+				continue;
+			}
+			String lemma = cache.get(key);
+			if (lemma != null) {
+				lemmas.put(key, lemma);
+			} else {
+				misses.put(key, token);
+			}
+		}
+		if (!misses.isEmpty()) {
+			List<CoreLabel> missTokens = new ArrayList<CoreLabel>(misses.values());
+			CoreMap missSentence = new ArrayCoreMap();
+			missSentence.set(TokensAnnotation.class, missTokens);
+			Annotation missDocument = new Annotation("");
+			missDocument.set(TokensAnnotation.class, missTokens);
+			missDocument.set(SentencesAnnotation.class, Collections.singletonList(missSentence));
+			morpha.annotate(missDocument);
+			for (Map.Entry<String, CoreLabel> miss : misses.entrySet()) {
+				String lemma = miss.getValue().get(LemmaAnnotation.class);
+				if (lemma != null) {
+					cache.put(miss.getKey(), lemma);
+					lemmas.put(miss.getKey(), lemma);
+				}
+			}
+		}
+		for (int i = 0; i < tokens.size(); i++) {
+			String lemma = lemmas.get(keys.get(i));
+			if (lemma != null) {
+				tokens.get(i).set(LemmaAnnotation.class, lemma);
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+//
+// These are the tools used to annotate Annotated Gigaword (Napoles,
+// Gormley, and Van Durme, 2012) using a modified Stanford CoreNLP
+// pipeline. The current version here is StanfordCoreNLP v.1.3.2. The
+// primary modification is to use parse trees as input (instead of
+// parsing sentences using the Stanford parser/grammar). The pipeline
+// is also modified to print the root dependency.
+//
+// DocumentStageGraph runs the annotation stages of a document as a
+// dependency graph: a stage starts as soon as the stages it requires
+// have finished, so independent stages run concurrently. A graph
+// annotates one document at a time; to annotate several at once, use a
+// graph per thread with its own annotators.
+//
+
+package edu.jhu.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import edu.stanford.nlp.pipeline.Annotation;
+
+public class DocumentStageGraph {
+	Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	ExecutorService executor;
+	boolean debug = false;
+
+	/**
+	 * a single annotation step. CoreMaps are not thread-safe, so a stage that
+	 * may run at the same time as another one that writes to the document
+	 * must not read or write the document in annotate(). It should copy what
+	 * it reads in prepare(), and collect its results to write them in
+	 * finish(), which runs when no other stage is running.
+	 */
+	public static abstract class Stage {
+		String name;
+		String description;
+		List<String> requires;
+
+		/**
+		 * @param name
+		 *            name of the stage, referenced by stages that require it
+		 * @param description
+		 *            what the stage annotates, for error messages
+		 * @param requires
+		 *            names of the stages that must finish before this one
+		 */
+		public Stage(String name, String description, String... requires) {
+			this.name = name;
+			this.description = description;
+			this.requires = Arrays.asList(requires);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * called for every stage, in the order they were added and before
+		 * any stage is run
+		 *
+		 * @param document
+		 */
+		public void prepare(Annotation document) {
+		}
+
+		public abstract void annotate(Annotation document) throws Exception;
+
+		/**
+		 * @return true if finish() writes to the document, in which case it
+		 *         is deferred until no other stage is running, and the stages
+		 *         that require this one wait for it
+		 */
+		public boolean writesInFinish() {
+			return false;
+		}
+
+		/**
+		 * called on the thread running the graph after annotate(), and
+		 * before the stages that require this one start
+		 *
+		 * @param document
+		 */
+		public void finish(Annotation document) throws Exception {
+		}
+	}
+
+	public DocumentStageGraph(ExecutorService executor, boolean debug) {
+		this.executor = executor;
+		this.debug = debug;
+	}
+
+	public void addStage(Stage stage) {
+		if (stages.containsKey(stage.name)) {
+			throw new IllegalArgumentException("Duplicate stage " + stage.name);
+		}
+		stages.put(stage.name, stage);
+	}
+
+	/**
+	 * requirements on a stage that is not in the graph are ignored, so a
+	 * stage can be removed without changing the stages that follow it
+	 *
+	 * @param name
+	 */
+	public void removeStage(String name) {
+		stages.remove(name);
+	}
+
+	public boolean hasStage(String name) {
+		return stages.containsKey(name);
+	}
+
+	/**
+	 * annotate the document with every stage in the graph. An exception in a
+	 * stage is reported and the stages that require it still run, as when
+	 * the stages were run one after another.
+	 *
+	 * @param document
+	 * @param documentName
+	 *            used in error messages
+	 * @throws InterruptedException
+	 */
+	public void run(final Annotation document, final String documentName)
+			throws InterruptedException {
+		for (Stage stage : stages.values()) {
+			stage.prepare(document);
+		}
+		List<Stage> pending = new ArrayList<Stage>(stages.values());
+		Set<String> finished = new HashSet<String>();
+		// annotated, but waiting for the other running stages to finish
+		List<Stage> deferred = new ArrayList<Stage>();
+		CompletionService<Stage> completion = new ExecutorCompletionService<Stage>(executor);
+		int running = 0;
+		while (!pending.isEmpty() || running > 0) {
+			List<Stage> ready = new ArrayList<Stage>();
+			for (Stage stage : pending) {
+				if (isReady(stage, finished)) {
+					ready.add(stage);
+				}
+			}
+			pending.removeAll(ready);
+			if (ready.isEmpty() && running == 0) {
+				throw new IllegalStateException("Cyclic stage requirements: " + pending);
+			}
+			if (ready.size() == 1 && running == 0) {
+				// nothing to overlap with, so don't hand off to another thread
+				runStage(ready.get(0), document, documentName);
+				finishStage(ready.get(0), document, documentName);
+				finished.add(ready.get(0).name);
+				continue;
+			}
+			for (final Stage stage : ready) {
+				completion.submit(new Callable<Stage>() {
+					public Stage call() {
+						runStage(stage, document, documentName);
+						return stage;
+					}
+				});
+				running++;
+			}
+			Stage done;
+			try {
+				done = completion.take().get();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			running--;
+			if (done.writesInFinish()) {
+				deferred.add(done);
+			} else {
+				finishStage(done, document, documentName);
+				finished.add(done.name);
+			}
+			if (running == 0) {
+				for (Stage stage : deferred) {
+					finishStage(stage, document, documentName);
+					finished.add(stage.name);
+				}
+				deferred.clear();
+			}
+		}
+	}
+
+	boolean isReady(Stage stage, Set<String> finished) {
+		for (String name : stage.requires) {
+			if (stages.containsKey(name) && !finished.contains(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void runStage(Stage stage, Annotation document, String documentName) {
+		if (debug) {
+			System.err.println("Annotating " + stage.name);
+		}
+		try {
+			stage.annotate(document);
+		} catch (Exception e) {
+			System.err.println("Error annotating " + stage.description + " of " + documentName);
+			if (debug)
+				e.printStackTrace();
+		}
+	}
+
+	void finishStage(Stage stage, Annotation document, String documentName) {
+		try {
+			stage.finish(document);
+		} catch (Exception e) {
+			System.err.println("Error adding " + stage.description + " to " + documentName);
+			if (debug)
+				e.printStackTrace();
+		}
+	}
+}
@@ -14,9 +14,19 @@
 
 package edu.jhu.annotation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import nu.xom.Attribute;
 import nu.xom.Document;
@@ -28,40 +38,70 @@ import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreAnnotations.*;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.Annotator;
-import edu.stanford.nlp.pipeline.ParserAnnotatorUtils;
+import edu.stanford.nlp.pipeline.DeterministicCorefAnnotator;
+import edu.stanford.nlp.pipeline.MorphaAnnotator;
+import edu.stanford.nlp.pipeline.NERCombinerAnnotator;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
 import edu.stanford.nlp.trees.semgraph.SemanticGraph;
-import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations;
 import edu.stanford.nlp.trees.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphFactory;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
 import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation;
 
 public class GigawordAnnotator {
 	StanfordCoreNLP pipeline;
+	Properties props;
 	GigawordDocumentHandler gdh;
+	DocumentStageGraph stages;
+	ExecutorService stageExecutor;
 	static final String usage = "You must specify an input path: java edu.jhu.annotation.GigawordAnnotator --in path/to/inputfile\n"
 			+ "  Optional arguments: \n"
 			+ "       --sgml t|f                 input has SGML markup (default: t)\n"
 			+ "       --text \"TEXT_TYPE\"         name of the type contaning parses (default: TEXT)\n"
 			+ "       --doc \"DOC_TYPE\"           name of the parent of TEXT_TYPE (default: DOC)\n"
 			+ "       --parsePrefix \"(ROOT (\"    prefix starting parses (default: \"( (\")\n"
-			+ "       --ner t|f                  perform NER (default:t)\n"
+			+ "       --ner t|f                  perform NER (default:t; still computed but not output for coref)\n"
 			+ "       --coref t|f                perform coref resolution (default: t)\n"
 			+ "       --dep t|f                  extract dependencies (default: t)\n"
+			+ "       --layers L1,L2,...         compute and output only these layers, from tokens, lemma, pos, ner,\n"
+			+ "                                  parse, basic-deps, collapsed-deps, ccprocessed-deps, coref\n"
+			+ "                                  (default: all; layers coref needs are computed but not output)\n"
+			+ "       --lemmaCache N             (word, POS) pairs to memoize lemmas for (default: 100000, 0 disables)\n"
+			+ "       --threads N                documents to annotate at once (default: 1; each thread\n"
+			+ "                                  after the first loads its own NER and coref models)\n"
+			+ "       --lookahead N              documents to read ahead of the output when using threads\n"
+			+ "                                  (default: 4 per thread)\n"
+			+ "       --bufferMB N               finished output to hold in memory before spilling to disk (default: 64)\n"
 	                + "       --sents t|f                just sentences, no document structure (default f; if true no coref and no SGML input)\n"
 			+ "       --debug                 to print debugging messages";
 
 	String docTypeName = "DOC";
 	String textTypeName = "TEXT";
 	String parsePrefix = "( (";
+	boolean do_tokens = true;
+	boolean do_lemma = true;
+	boolean do_pos = true;
 	boolean do_ner = true;
+	boolean do_parse = true;
+	boolean do_basic_deps = true;
+	boolean do_collapsed_deps = true;
+	boolean do_cc_deps = true;
 	boolean do_coref = true;
-	boolean do_deps = true;
+	boolean layersSelected = false;
 	boolean useSGML = true;
 	boolean debug = false;
     boolean justSents = false;
 	String inputpath = null;
+	int lemmaCacheSize = 100000;
+	MemoCache<String, String> lemmaCache = null;
+	int threads = 1;
+	int lookahead = 0;
+	int bufferMB = 64;
+	volatile Throwable failure = null;
 
 	public GigawordAnnotator() {}
 
@@ -77,13 +117,14 @@ public class GigawordAnnotator {
 			gigannotator.run();
 		} catch (Exception e) {
 			e.printStackTrace();
+			System.exit(1);
 		}
 	}
 
 	private void initialize() {
 		gdh = new GigawordDocumentHandler(inputpath);
 		gdh.setOptions(useSGML, textTypeName, docTypeName, parsePrefix, debug, justSents);
-		Properties props = new Properties();
+		props = new Properties();
 		String annotatorList = "tokenize, ssplit, pos, lemma, parse";
 		if (do_coref)
 			annotatorList += ", ner, dcoref";
@@ -94,6 +135,68 @@ public class GigawordAnnotator {
 		}
 		props.put("annotators", annotatorList);
 		pipeline = new StanfordCoreNLP(props);
+		initializeStages();
+	}
+
+	private void initializeStages() {
+		stageExecutor = Executors.newCachedThreadPool();
+		if (lemmaCacheSize > 0) {
+			lemmaCache = new MemoCache<String, String>("lemma", lemmaCacheSize);
+		}
+		try {
+			stages = buildStages(false);
+		} catch (Exception e) {
+			// the shared annotators were already loaded by the pipeline
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * build the per-document stages. NER and dependency conversion only need
+	 * the trees, so they run concurrently and both feed coref. Coref needs
+	 * lemmas, NEs and collapsed dependencies, so they are computed for it
+	 * even if they are not output.
+	 * 
+	 * @param ownAnnotators
+	 *            load new morpha, NER and dcoref annotators rather than use the
+	 *            pipeline's, which are not thread-safe, so that the graph can
+	 *            run alongside another one. The lemma cache is shared.
+	 * @throws Exception
+	 *             if the models cannot be loaded
+	 */
+	DocumentStageGraph buildStages(boolean ownAnnotators) throws Exception {
+		DocumentStageGraph graph = new DocumentStageGraph(stageExecutor, debug);
+		if (do_lemma || do_ner || do_coref) {
+			Annotator morpha = ownAnnotators ? new MorphaAnnotator(false) : morphaAnnotator();
+			final Annotator lemma = lemmaCache == null ? morpha
+					: new CachedLemmaAnnotator(morpha, lemmaCache);
+			graph.addStage(new DocumentStageGraph.Stage("morphology", "morphology") {
+				public void annotate(Annotation document) {
+					lemma.annotate(document);
+				}
+			});
+		}
+		if (do_ner || do_coref) {
+			final Annotator ner = ownAnnotators ? new NERCombinerAnnotator() : nerAnnotator();
+			graph.addStage(new DocumentStageGraph.Stage("NER", "NEs", "morphology") {
+				public void annotate(Annotation document) {
+					ner.annotate(document);
+				}
+			});
+		}
+		if (do_basic_deps || do_collapsed_deps || do_cc_deps || do_coref) {
+			graph.addStage(new DependencyStage());
+		}
+		if (do_coref) {
+			final Annotator dcoref = ownAnnotators ? new DeterministicCorefAnnotator(props) : dcorefAnnotator();
+			graph.addStage(new DocumentStageGraph.Stage("coref", "coref chains", "morphology", "NER", "dependencies") {
+				public void annotate(Annotation document) {
+					fixNullDependencyGraphs(document);
+					dcoref.annotate(document);
+				}
+			});
+		}
+		return graph;
 	}
 
 	private void processArgs(String[] args) {
@@ -114,8 +217,12 @@ public class GigawordAnnotator {
 					parsePrefix = args[++i];
 				} else if (args[i].equals("--dep")) {
 					if (args[++i].equalsIgnoreCase("f")) {
-						do_deps = false;
+						do_basic_deps = false;
+						do_collapsed_deps = false;
+						do_cc_deps = false;
 					}
+				} else if (args[i].equals("--layers")) {
+					setLayers(args[++i]);
 				} else if (args[i].equals("--ner")) {
 					if (args[++i].equalsIgnoreCase("f")) {
 						do_ner = false;
@@ -124,13 +231,19 @@ public class GigawordAnnotator {
 					if (args[++i].equalsIgnoreCase("f")) {
 						do_coref = false;
 					}
+				} else if (args[i].equals("--lemmaCache")) {
+					lemmaCacheSize = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--lookahead")) {
+					lookahead = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--bufferMB")) {
+					bufferMB = Integer.parseInt(args[++i]);
 				} else if (args[i].equals("--debug")) {
 					debug = true;
 				} else if (args[i].equals("--sents")) {
 					if (args[++i].equalsIgnoreCase("t")) {
 					    justSents = true;
-					    do_coref = false;
-					    useSGML = false;
 					}
 				}
 				else {
@@ -149,6 +262,53 @@ public class GigawordAnnotator {
 			System.err.println(usage);
 			System.exit(1);
 		}
+		// after all the options, so that --layers cannot turn coref back on
+		if (justSents) {
+			do_coref = false;
+			useSGML = false;
+		}
+		if (lookahead <= 0) {
+			lookahead = 4 * threads;
+		}
+	}
+
+	/**
+	 * select the annotation layers to compute and output, replacing the
+	 * defaults and any earlier --ner, --coref or --dep options
+	 * 
+	 * @param layers
+	 *            comma-separated layer names
+	 */
+	private void setLayers(String layers) {
+		layersSelected = true;
+		do_tokens = do_lemma = do_pos = do_ner = do_parse = false;
+		do_basic_deps = do_collapsed_deps = do_cc_deps = do_coref = false;
+		for (String layer : layers.split(",")) {
+			layer = layer.trim();
+			if (layer.equals("tokens")) {
+				do_tokens = true;
+			} else if (layer.equals("lemma")) {
+				do_lemma = true;
+			} else if (layer.equals("pos")) {
+				do_pos = true;
+			} else if (layer.equals("ner")) {
+				do_ner = true;
+			} else if (layer.equals("parse")) {
+				do_parse = true;
+			} else if (layer.equals("basic-deps")) {
+				do_basic_deps = true;
+			} else if (layer.equals("collapsed-deps")) {
+				do_collapsed_deps = true;
+			} else if (layer.equals("ccprocessed-deps")) {
+				do_cc_deps = true;
+			} else if (layer.equals("coref")) {
+				do_coref = true;
+			} else {
+				System.err.println("Invalid layer: " + layer);
+				System.err.println(usage);
+				System.exit(1);
+			}
+		}
 	}
 
 	/**
@@ -167,59 +327,248 @@ public class GigawordAnnotator {
 	}
 
 	/**
-	 * sequentially annotates documents from the GigawordDocumentHandler
+	 * sequentially annotates documents from the GigawordDocumentHandler, or
+	 * concurrently if more than one thread is used
 	 * 
 	 * @throws IOException
 	 */
-	public void run() throws IOException {
+	public void run() throws IOException, InterruptedException {
 		gdh.openReader();
-		while (!gdh.fileEmpty()) {
+		try {
+			if (threads > 1) {
+				runConcurrent();
+			} else {
+				while (!gdh.fileEmpty()) {
+					Annotation document = gdh.getNextDocumentAnnotation();
+					if (debug) { System.err.println("Annotating document "+gdh.currentDocument); }
+					if (document == null) {
+						if (debug) {
+							System.err.println("Null document");
+						}
+						continue;
+					}
+					stages.run(document, gdh.currentDocument);
+					stanfordPrintXML(document);
+				}
+			}
+		} finally {
+			stageExecutor.shutdown();
+		}
+		gdh.closeReader();
+		if (lemmaCache != null) {
+			System.err.println(lemmaCache);
+		}
+	}
+
+	/**
+	 * annotates several documents at a time, each worker thread with its own
+	 * stages (see buildStages()). Reading stays at most lookahead documents
+	 * ahead of the output, and the most expensive of the documents waiting
+	 * (by the estimate from the GigawordDocumentHandler) are started first,
+	 * so that a long document does not hold up the ones behind it. Each
+	 * document's output, including its markup, is collected separately and
+	 * written in input order by a ReorderBuffer, which spills to disk rather
+	 * than holding it in memory while an early document is still being
+	 * annotated. Since the window only moves when output is written, a
+	 * cheap document cannot be passed over indefinitely: once no more
+	 * documents can be read, it is the only one left to start.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void runConcurrent() throws IOException, InterruptedException {
+		ReorderBuffer reorder = new ReorderBuffer(System.out, bufferMB * 1024L * 1024L, debug);
+		Semaphore window = new Semaphore(lookahead);
+		ThreadPoolExecutor documentExecutor = new ThreadPoolExecutor(threads,
+				threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		final AtomicBoolean sharedStagesTaken = new AtomicBoolean(false);
+		ThreadLocal<DocumentStageGraph> workerStages = new ThreadLocal<DocumentStageGraph>() {
+			protected DocumentStageGraph initialValue() {
+				if (!sharedStagesTaken.getAndSet(true)) {
+					return stages;
+				}
+				try {
+					return buildStages(true);
+				} catch (Exception e) {
+					throw new RuntimeException("Cannot load annotators", e);
+				}
+			}
+		};
+		long sequence = 0;
+		try {
+			while (!gdh.fileEmpty()) {
+				window.acquire();
+				if (failure != null) {
+					break;
+				}
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				PrintStream out = new PrintStream(buffer);
+				gdh.setOutput(out);
 				Annotation document = gdh.getNextDocumentAnnotation();
-				if (debug) { System.err.println("Annotating document "+gdh.currentDocument); }
+				if (debug) { System.err.println("Read document "+gdh.currentDocument+" with estimated cost "+gdh.currentDocumentCost); }
 				if (document == null) {
 					if (debug) {
 						System.err.println("Null document");
 					}
+					out.flush();
+					window.release(reorder.add(sequence++, buffer.toByteArray()));
 					continue;
 				}
-				if (debug) {
-					System.err.println("Annotating morphology");
+				documentExecutor.execute(new DocumentTask(sequence++,
+						gdh.currentDocumentCost, document, gdh.currentDocument,
+						buffer, out, reorder, window, workerStages));
+			}
+		} finally {
+			gdh.setOutput(System.out);
+			documentExecutor.shutdown();
+			documentExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		try {
+			reorder.close();
+		} catch (IOException e) {
+			// output is missing if a document failed, so report the cause
+			if (failure == null) {
+				throw e;
+			}
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException("Error annotating documents", failure);
+		}
+	}
+
+	/**
+	 * annotates one document and passes its output to the ReorderBuffer,
+	 * releasing a window permit for each document that it writes. Waiting
+	 * tasks are ordered by decreasing cost, then by input order.
+	 */
+	class DocumentTask implements Runnable, Comparable<DocumentTask> {
+		long sequence;
+		long cost;
+		Annotation document;
+		String name;
+		ByteArrayOutputStream buffer;
+		PrintStream out;
+		ReorderBuffer reorder;
+		Semaphore window;
+		ThreadLocal<DocumentStageGraph> workerStages;
+
+		DocumentTask(long sequence, long cost, Annotation document,
+				String name, ByteArrayOutputStream buffer, PrintStream out,
+				ReorderBuffer reorder, Semaphore window,
+				ThreadLocal<DocumentStageGraph> workerStages) {
+			this.sequence = sequence;
+			this.cost = cost;
+			this.document = document;
+			this.name = name;
+			this.buffer = buffer;
+			this.out = out;
+			this.reorder = reorder;
+			this.window = window;
+			this.workerStages = workerStages;
+		}
+
+		public void run() {
+			try {
+				if (failure == null) {
+					if (debug) { System.err.println("Annotating document "+name); }
+					workerStages.get().run(document, name);
+					stanfordPrintXML(document, out);
+					out.flush();
+					window.release(reorder.add(sequence, buffer.toByteArray()));
 				}
-				try {
-				    morphaAnnotator().annotate(document);
-				} catch (Exception e) {
-				    System.err.println("Error annotating morphology of " + gdh.currentDocument);
-				    if (debug) 
-					e.printStackTrace();
+			} catch (Throwable t) {
+				// including Errors, which would otherwise leave a gap in
+				// the output and everything after it unwritten
+				System.err.println("Error annotating " + name);
+				failure = t;
+				// nothing after this document will be written, so wake the
+				// reader to stop
+				window.release();
+			}
+		}
+
+		public int compareTo(DocumentTask other) {
+			if (cost != other.cost) {
+				return cost > other.cost ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * converts the trees to the selected dependency types. It runs alongside
+	 * the morphology and NER stages, which annotate the same sentences, so it
+	 * converts copies of the trees and keeps the graphs until finish() to add
+	 * them. Coref needs the collapsed dependencies even when they are not
+	 * output.
+	 */
+	class DependencyStage extends DocumentStageGraph.Stage {
+		List<Tree> trees = new ArrayList<Tree>();
+		// basic, collapsed and cc-processed graphs of each sentence
+		List<SemanticGraph[]> graphs = new ArrayList<SemanticGraph[]>();
+
+		DependencyStage() {
+			super("dependencies", "dependencies");
+		}
+
+		public void prepare(Annotation document) {
+			trees.clear();
+			graphs.clear();
+			for (CoreMap sent : document.get(SentencesAnnotation.class)) {
+				Tree tree = sent.get(TreeAnnotation.class);
+				trees.add(tree == null ? null : tree.deepCopy());
+			}
+		}
+
+		public void annotate(Annotation document) {
+			for (Tree tree : trees) {
+				SemanticGraph[] sentGraphs = new SemanticGraph[3];
+				graphs.add(sentGraphs);
+				if (tree == null) {
+					continue;
 				}
-				if (do_ner) {
-					if (debug) {
-						System.err.println("Annotating NER");
+				try {
+					if (do_basic_deps) {
+						sentGraphs[0] = SemanticGraphFactory.generateUncollapsedDependencies(tree);
 					}
-					try {
-					    nerAnnotator().annotate(document);
-					} catch (Exception e) {
-					    System.err.println("Error annotating NEs of " + gdh.currentDocument);
-					    if (debug) 
-						e.printStackTrace();
+					if (do_collapsed_deps || do_coref) {
+						sentGraphs[1] = SemanticGraphFactory.generateCollapsedDependencies(tree);
 					}
-				}
-				if (do_coref) {
-					if (debug) {
-						System.err.println("Annotating coref");
+					if (do_cc_deps) {
+						sentGraphs[2] = SemanticGraphFactory.generateCCProcessedDependencies(tree);
 					}
-					fixNullDependencyGraphs(document);
-					try {
-					    dcorefAnnotator().annotate(document);
-					} catch (Exception e) {
-					    System.err.println("Error annotating coref chains of " + gdh.currentDocument);
-					    if (debug) 
-						e.printStackTrace();
+				} catch (Exception e) {
+					if (debug) {
+					    System.err.println("Error filling in parse annotation for sentence "+graphs.size());
 					}
 				}
-				stanfordPrintXML(document);
+			}
+			trees.clear();
+		}
+
+		public boolean writesInFinish() {
+			return true;
+		}
+
+		public void finish(Annotation document) {
+			List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+			for (int i = 0; i < graphs.size(); i++) {
+				CoreMap sent = sentences.get(i);
+				SemanticGraph[] sentGraphs = graphs.get(i);
+				if (sentGraphs[0] != null) {
+					sent.set(BasicDependenciesAnnotation.class, sentGraphs[0]);
+				}
+				if (sentGraphs[1] != null) {
+					sent.set(CollapsedDependenciesAnnotation.class, sentGraphs[1]);
+				}
+				if (sentGraphs[2] != null) {
+					sent.set(CollapsedCCProcessedDependenciesAnnotation.class, sentGraphs[2]);
+				}
+			}
+			graphs.clear();
 		}
-		gdh.closeReader();
 	}
 
     /**
@@ -285,6 +634,77 @@ public class GigawordAnnotator {
 		}
 	}
 
+	/**
+	 * fill in the dependency element of a sentence, adding it if
+	 * annotationToDoc() did not write it. If the dependency type is
+	 * not selected the element is removed under --layers, and emptied
+	 * otherwise, as --dep f always did.
+	 *
+	 * @param sentElem
+	 * @param name
+	 * @param selected
+	 * @param semGraph
+	 */
+	void addDependencies(Element sentElem, String name, boolean selected,
+			SemanticGraph semGraph) {
+		Element depElem = sentElem.getFirstChildElement(name);
+		if (!selected) {
+			if (depElem != null && layersSelected) {
+				depElem.detach();
+			} else if (depElem != null) {
+				depElem.removeChildren();
+			}
+			return;
+		}
+		if (depElem == null) {
+			depElem = new Element(name);
+			sentElem.appendChild(depElem);
+		} else {
+			depElem.removeChildren();
+		}
+		addDependencyToXML(semGraph, depElem);
+	}
+
+	/**
+	 * remove the token fields of layers that are not selected, or all the
+	 * tokens if none of their layers are
+	 *
+	 * @param sentElem
+	 */
+	void projectTokens(Element sentElem) {
+		Element tokensElem = sentElem.getFirstChildElement("tokens");
+		if (tokensElem == null || (do_tokens && do_lemma && do_pos && do_ner)) {
+			return;
+		}
+		if (!(do_tokens || do_lemma || do_pos || do_ner)) {
+			tokensElem.detach();
+			return;
+		}
+		Elements tokenElems = tokensElem.getChildElements("token");
+		for (int i = 0; i < tokenElems.size(); i++) {
+			Elements fields = tokenElems.get(i).getChildElements();
+			for (int j = 0; j < fields.size(); j++) {
+				if (!tokenFieldSelected(fields.get(j).getLocalName())) {
+					fields.get(j).detach();
+				}
+			}
+		}
+	}
+
+	boolean tokenFieldSelected(String name) {
+		if (name.equals("word") || name.startsWith("CharacterOffset")) {
+			return do_tokens;
+		} else if (name.equals("lemma")) {
+			return do_lemma;
+		} else if (name.equals("POS")) {
+			return do_pos;
+		} else if (name.equals("NER") || name.equals("NormalizedNER")
+				|| name.equals("Timex")) {
+			return do_ner;
+		}
+		return true;
+	}
+
 	/**
 	 * Create the XML document, using the base StanfordCoreNLP default and
 	 * adding custom dependency representations (to include root elements)
@@ -294,7 +714,50 @@ public class GigawordAnnotator {
 	 * @throws IOException
 	 */
 	public void stanfordPrintXML(Annotation anno) throws IOException {
-		Document xmlDoc = pipeline.annotationToDoc(anno);
+		stanfordPrintXML(anno, System.out);
+	}
+
+	/**
+	 * @param anno
+	 *            Document to be output as XML
+	 * @param out
+	 *            where to print it
+	 * @throws IOException
+	 */
+	public void stanfordPrintXML(Annotation anno, PrintStream out) throws IOException {
+		List<CoreMap> sentences = anno
+				.get(CoreAnnotations.SentencesAnnotation.class);
+		// annotationToDoc() writes whatever is set, so hide the trees if the
+		// parse is not selected, and the dependency graphs, which
+		// addDependencies() writes in its own format. They are put back
+		// once the document is built.
+		List<Tree> trees = new ArrayList<Tree>(sentences.size());
+		List<SemanticGraph[]> graphs = new ArrayList<SemanticGraph[]>(sentences.size());
+		for (CoreMap sentence : sentences) {
+			trees.add(sentence.get(TreeAnnotation.class));
+			graphs.add(new SemanticGraph[] {
+					sentence.get(BasicDependenciesAnnotation.class),
+					sentence.get(CollapsedDependenciesAnnotation.class),
+					sentence.get(CollapsedCCProcessedDependenciesAnnotation.class) });
+			if (!do_parse) {
+				sentence.set(TreeAnnotation.class, null);
+			}
+			sentence.set(BasicDependenciesAnnotation.class, null);
+			sentence.set(CollapsedDependenciesAnnotation.class, null);
+			sentence.set(CollapsedCCProcessedDependenciesAnnotation.class, null);
+		}
+		Document xmlDoc;
+		try {
+			xmlDoc = pipeline.annotationToDoc(anno);
+		} finally {
+			for (int i = 0; i < sentences.size(); i++) {
+				CoreMap sentence = sentences.get(i);
+				sentence.set(TreeAnnotation.class, trees.get(i));
+				sentence.set(BasicDependenciesAnnotation.class, graphs.get(i)[0]);
+				sentence.set(CollapsedDependenciesAnnotation.class, graphs.get(i)[1]);
+				sentence.set(CollapsedCCProcessedDependenciesAnnotation.class, graphs.get(i)[2]);
+			}
+		}
 		Element root = xmlDoc.getRootElement();
 		Element docElem = (Element) root.getChild(0);
 
@@ -302,61 +765,38 @@ public class GigawordAnnotator {
 		Element corefElem = docElem.getFirstChildElement("coreference");
 		// because StanfordCoreNLP.annotationToDoc() only appends the coref
 		// element if it is nonempty (per Ben's request)
-		if (corefElem == null) {
+		if (corefElem != null) {
+		    corefElem.setLocalName("coreferences");
+		}
+		else if (do_coref || !layersSelected) {
+			// --coref f still writes the empty element, only --layers omits it
 			Element corefInfo = new Element("coreferences", null);
 			docElem.appendChild(corefInfo);
 		}
-		else {
-		    corefElem.setLocalName("coreferences");
-		}
 
-		if (do_deps) {
-			if (debug) {
-				System.err.println("Annotating dependencies");
+		Elements sentElems = docElem.getFirstChildElement("sentences")
+				.getChildElements("sentence");
+		for (int i = 0; i < sentElems.size(); i++) {
+			Element thisSent = sentElems.get(i);
+			if (do_basic_deps || do_collapsed_deps || do_cc_deps) {
+				thisSent.addAttribute(new Attribute("id",""+sentences.get(i).get(SentenceIndexAnnotation.class)));
 			}
-
+			projectTokens(thisSent);
 			// add dependency annotations (need to do it this way because
 			// CoreNLP
 			// does not include root annotation, and format is different from
-			// AnnotatedGigaword)
-			for (CoreMap sentence : anno.get(SentencesAnnotation.class)) {
-			    try {
-				ParserAnnotatorUtils.fillInParseAnnotations(false, sentence,
-						sentence.get(TreeAnnotation.class));
-			    } catch (Exception e) {
-				if (debug) {
-				    System.err.println("Error filling in parse annotation for sentence "+sentence);
-				}
-			    }
-
-			}
-			List<CoreMap> sentences = anno
-					.get(CoreAnnotations.SentencesAnnotation.class);
-			Elements sentElems = docElem.getFirstChildElement("sentences")
-					.getChildElements("sentence");
-			for (int i = 0; i < sentElems.size(); i++) {
-				Element thisSent = sentElems.get(i);
-				thisSent.addAttribute(new Attribute("id",""+sentences.get(i).get(SentenceIndexAnnotation.class))); 
-				Element basicDepElem = thisSent
-						.getFirstChildElement("basic-dependencies");
-				SemanticGraph semGraph = sentences.get(i).get(SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class);
-				addDependencyToXML(semGraph, basicDepElem);
-				Element colDepElem = thisSent.getFirstChildElement("collapsed-dependencies");
-				semGraph = sentences.get(i).get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class);
-				addDependencyToXML(semGraph, colDepElem);
-				Element colCcDepElem = thisSent.getFirstChildElement("collapsed-ccprocessed-dependencies");
-				semGraph = sentences.get(i).get(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class);
-				addDependencyToXML(semGraph, colCcDepElem);
-			}
+			// AnnotatedGigaword). The graphs were filled in by the
+			// dependencies stage.
+			addDependencies(thisSent, "basic-dependencies", do_basic_deps, graphs.get(i)[0]);
+			addDependencies(thisSent, "collapsed-dependencies", do_collapsed_deps, graphs.get(i)[1]);
+			addDependencies(thisSent, "collapsed-ccprocessed-dependencies", do_cc_deps, graphs.get(i)[2]);
 		}
-		// print to standard out
-		Serializer ser = new Serializer(System.out, "UTF-8");
+		// print to out (standard out unless annotating concurrently)
+		Serializer ser = new Serializer(out, "UTF-8");
 		ser.setIndent(2);
 		ser.setMaxLength(0);
 		Elements docElements = docElem.getChildElements();
 		if (justSents) {
-		    Elements sentElems = docElem.getFirstChildElement("sentences")
-			.getChildElements("sentence");
 		    for (int i = 0; i < sentElems.size(); i++) {
 			ser.write(sentElems.get(i));
 			ser.writeRaw("\n");
@@ -371,7 +811,7 @@ public class GigawordAnnotator {
 		}
 		ser.flush();
 		if (useSGML) {
-			System.out.println("\n</" + gdh.docTypeName + ">");
+			out.println("\n</" + gdh.docTypeName + ">");
 		}
 	}
 
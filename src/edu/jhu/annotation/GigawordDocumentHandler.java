@@ -39,6 +39,8 @@ public class GigawordDocumentHandler {
 	int docIdIndex = 0;
 	String docTypeName = "DOC", textTypeName = "TEXT", parsePrefix = "( (";
 	String currentDocument = null;
+	long currentDocumentCost = 0;
+	PrintStream out = System.out;
     boolean justSents = false;
     int sentenceCount = 1; // for flat files, no document structure
 
@@ -75,6 +77,16 @@ public class GigawordDocumentHandler {
 		}
 	}
 
+	/**
+	 * where markup and other lines that are not annotated are printed
+	 * (default: standard out)
+	 * 
+	 * @param out
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
 	/**
 	 * can read gzip or uncompressed files
 	 * 
@@ -97,7 +109,7 @@ public class GigawordDocumentHandler {
 		if (useSGMLformat) {
 		    while (!(s = input.readLine()).trim().startsWith("<" + docTypeName)) {
 			i++;
-			System.out.println(s);
+			out.println(s);
 			input.mark(0);
 		}
 		input.reset();
@@ -143,7 +155,7 @@ public class GigawordDocumentHandler {
 	public void closeReader() throws IOException {
 		String line;
 		while ((line = input.readLine()) != null) {
-			System.out.println(line);
+			out.println(line);
 		}
 		endOfFile = true;
 		input.close();
@@ -151,7 +163,8 @@ public class GigawordDocumentHandler {
 
 	/**
 	 * read the next document (with the type docEntity, default DOC) and convert
-	 * it to a Stanford annotation
+	 * it to a Stanford annotation. The estimated cost of annotating it is left
+	 * in currentDocumentCost.
 	 * 
 	 * @return
 	 * @throws IOException
@@ -161,6 +174,8 @@ public class GigawordDocumentHandler {
 		String line = "";
 		boolean inText = false;
 		int docSize = 0;
+		int tokenCount = 0;
+		currentDocumentCost = 0;
 
 		// inDocToAnnotate is always true unless a list of docIds is provided.
 		// See setDocList().
@@ -198,7 +213,7 @@ public class GigawordDocumentHandler {
 						inText = false;
 					} 
 				}
-				System.out.println(line);
+				out.println(line);
 			} else {
 				inText = true;
 			}
@@ -208,9 +223,11 @@ public class GigawordDocumentHandler {
 				CoreMap newSentence = getSentence(line);
 				if (newSentence != null) {
 					sentences.add(newSentence);
+					tokenCount += newSentence.get(TokensAnnotation.class).size();
 				}
 				if (justSents && docSize % 100 == 0) {
 				    if (debug) System.err.println("annotating "+docSize);
+				    currentDocumentCost = estimateCost(sentences.size(), tokenCount);
 				    return sentencesToDocument(sentences);
 				}
 
@@ -218,8 +235,21 @@ public class GigawordDocumentHandler {
 		}
 		if (!inDocToAnnotate)
 			return null;
+		currentDocumentCost = estimateCost(sentences.size(), tokenCount);
 		return sentencesToDocument(sentences);
 	}
+
+	/**
+	 * tagging and dependency conversion grow with the number of tokens, while
+	 * coref compares mentions across all the sentences of a document
+	 * 
+	 * @param sentenceCount
+	 * @param tokenCount
+	 * @return
+	 */
+	public long estimateCost(int sentenceCount, int tokenCount) {
+		return tokenCount + (long) sentenceCount * sentenceCount;
+	}
 	
 	/**
 	 * not used here, but escapes/converts tokens for XML
@@ -0,0 +1,497 @@
+//
+// These are the tools used to annotate Annotated Gigaword (Napoles,
+// Gormley, and Van Durme, 2012) using a modified Stanford CoreNLP
+// pipeline. The current version here is StanfordCoreNLP v.1.3.2. The
+// primary modification is to use parse trees as input (instead of
+// parsing sentences using the Stanford parser/grammar). The pipeline
+// is also modified to print the root dependency.
+//
+// GigawordXMLReader reads the XML written by GigawordAnnotator one
+// document at a time with a StAX parser, so that a file never needs to
+// be loaded into memory in full. When a document is read, each section
+// of its sentences (tokens, parse, each dependency type) and its
+// coreference chains are buffered as raw XML, and only decoded into
+// objects when they are accessed.
+//
+
+package edu.jhu.annotation;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+public class GigawordXMLReader {
+	static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+	static {
+		// copyElement() drops whitespace-only text, which must not be a
+		// piece of a text node split at an entity, e.g. "(CC &amp;)"
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	String inputpath;
+	InputStream input;
+	XMLStreamReader reader;
+	boolean endOfFile = false;
+	boolean readSentences = true;
+	boolean readCoref = true;
+	boolean debug = false;
+	String docTypeName = "DOC";
+
+	public GigawordXMLReader(String filepath) {
+		inputpath = filepath;
+	}
+
+	/**
+	 * sections that are not read are skipped by the parser without being
+	 * buffered, so the corresponding accessors return empty lists
+	 *
+	 * @param docTypeName
+	 * @param readSentences
+	 * @param readCoref
+	 * @param debug
+	 */
+	public void setOptions(String docTypeName, boolean readSentences,
+			boolean readCoref, boolean debug) {
+		this.docTypeName = docTypeName;
+		this.readSentences = readSentences;
+		this.readCoref = readCoref;
+		this.debug = debug;
+	}
+
+	/**
+	 * can read gzip or uncompressed files
+	 *
+	 * @throws IOException
+	 */
+	public void openReader() throws IOException {
+		input = new BufferedInputStream(new FileInputStream(inputpath));
+		if (inputpath.endsWith(".gz")) {
+			input = new GZIPInputStream(input);
+		}
+		try {
+			reader = inputFactory.createXMLStreamReader(input, "UTF-8");
+		} catch (XMLStreamException e) {
+			throw new IOException("Cannot read XML from " + inputpath, e);
+		}
+		if (debug) {
+			System.err.println("Reading annotations from " + inputpath);
+		}
+	}
+
+	public boolean fileEmpty() {
+		return endOfFile;
+	}
+
+	public void closeReader() throws IOException {
+		endOfFile = true;
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+		input.close();
+	}
+
+	/**
+	 * read the next document (with the type docTypeName, default DOC)
+	 *
+	 * @return the next document, or null if there are no more documents
+	 * @throws IOException
+	 */
+	public XMLDocument getNextDocument() throws IOException {
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& reader.getLocalName().equals(docTypeName)) {
+					return readDocument();
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Malformed XML in " + inputpath, e);
+		}
+		endOfFile = true;
+		return null;
+	}
+
+	/**
+	 * the reader is positioned on the start tag of a document
+	 */
+	XMLDocument readDocument() throws XMLStreamException {
+		XMLDocument doc = new XMLDocument();
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			doc.attributes.put(reader.getAttributeLocalName(i),
+					reader.getAttributeValue(i));
+		}
+		if (debug) {
+			System.err.println("Reading document " + doc.getId());
+		}
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			if (readSentences && name.equals("sentences")) {
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					String id = reader.getAttributeValue(null, "id");
+					int index = doc.sentences.size() + 1;
+					if (id != null) {
+						index = Integer.parseInt(id);
+					}
+					XMLSentence sentence = new XMLSentence(index);
+					while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+						sentence.sections.put(reader.getLocalName(), copyElement());
+					}
+					doc.sentences.add(sentence);
+				}
+			} else if (readCoref && name.equals("coreferences")) {
+				doc.corefXML = copyElement();
+			} else {
+				skipElement();
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * skip the element the reader is positioned on, leaving the reader on its
+	 * end tag. Character data between the children (e.g. the parses in TEXT)
+	 * is also skipped, which nextTag() would not allow.
+	 */
+	void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * copy the element the reader is positioned on to a string, leaving the
+	 * reader on its end tag
+	 */
+	String copyElement() throws XMLStreamException {
+		StringWriter sw = new StringWriter();
+		XMLStreamWriter writer = outputFactory.createXMLStreamWriter(sw);
+		int depth = 0;
+		do {
+			switch (reader.getEventType()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				writer.writeStartElement(reader.getLocalName());
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					writer.writeAttribute(reader.getAttributeLocalName(i),
+							reader.getAttributeValue(i));
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				writer.writeEndElement();
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				if (!reader.isWhiteSpace()) {
+					writer.writeCharacters(reader.getText());
+				}
+				break;
+			}
+			if (depth > 0) {
+				reader.next();
+			}
+		} while (depth > 0);
+		writer.close();
+		return sw.toString();
+	}
+
+	/**
+	 * open a reader over a buffered fragment, positioned on its root element
+	 */
+	static XMLStreamReader openFragment(String xml) throws XMLStreamException {
+		XMLStreamReader r = inputFactory.createXMLStreamReader(new StringReader(xml));
+		r.nextTag();
+		return r;
+	}
+
+	/**
+	 * text of the element r is positioned on, leaving r on its end tag
+	 */
+	static String readText(XMLStreamReader r) throws XMLStreamException {
+		return r.getElementText().trim();
+	}
+
+	/**
+	 * a document read from the file. Sentences and coreference chains are
+	 * decoded on first access.
+	 */
+	public static class XMLDocument {
+		Map<String, String> attributes = new HashMap<String, String>();
+		List<XMLSentence> sentences = new ArrayList<XMLSentence>();
+		String corefXML = null;
+		List<List<XMLMention>> corefChains = null;
+
+		public String getId() {
+			return attributes.get("id");
+		}
+
+		public String getAttribute(String name) {
+			return attributes.get(name);
+		}
+
+		public List<XMLSentence> getSentences() {
+			return Collections.unmodifiableList(sentences);
+		}
+
+		/**
+		 * each chain is a list of mentions, the representative mention
+		 * included
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public List<List<XMLMention>> getCorefChains() throws IOException {
+			if (corefChains == null) {
+				corefChains = new ArrayList<List<XMLMention>>();
+				if (corefXML != null) {
+					try {
+						decodeCoref();
+					} catch (XMLStreamException e) {
+						throw new IOException("Malformed coreferences in document " + getId(), e);
+					}
+					corefXML = null;
+				}
+			}
+			return corefChains;
+		}
+
+		void decodeCoref() throws XMLStreamException {
+			XMLStreamReader r = openFragment(corefXML);
+			while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				List<XMLMention> chain = new ArrayList<XMLMention>();
+				while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					XMLMention mention = new XMLMention();
+					mention.representative = "true".equals(r.getAttributeValue(null, "representative"));
+					while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+						String name = r.getLocalName();
+						int value = Integer.parseInt(readText(r));
+						if (name.equals("sentence")) {
+							mention.sentence = value;
+						} else if (name.equals("start")) {
+							mention.start = value;
+						} else if (name.equals("end")) {
+							mention.end = value;
+						} else if (name.equals("head")) {
+							mention.head = value;
+						}
+					}
+					chain.add(mention);
+				}
+				corefChains.add(chain);
+			}
+			r.close();
+		}
+	}
+
+	/**
+	 * a sentence read from the file. Each section (tokens, parse, and each
+	 * dependency type) is buffered separately, and decoded on first access
+	 * without parsing the others.
+	 */
+	public static class XMLSentence {
+		int index;
+		// raw XML of the sections not decoded yet, by element name
+		Map<String, String> sections = new HashMap<String, String>();
+		List<XMLToken> tokens = null;
+		String parse = null;
+		boolean parseRead = false;
+		Map<String, List<XMLDependency>> dependencies = new HashMap<String, List<XMLDependency>>();
+
+		XMLSentence(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * @return the 1-based sentence index, as referenced by coref mentions
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public List<XMLToken> getTokens() throws IOException {
+			if (tokens == null) {
+				tokens = new ArrayList<XMLToken>();
+				try {
+					XMLStreamReader r = seek("tokens");
+					if (r != null) {
+						while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+							tokens.add(readToken(r));
+						}
+						r.close();
+					}
+				} catch (XMLStreamException e) {
+					throw new IOException("Malformed tokens in sentence " + index, e);
+				}
+			}
+			return tokens;
+		}
+
+		/**
+		 * @return the Penn Treebank style parse, or null if there is none
+		 * @throws IOException
+		 */
+		public String getParse() throws IOException {
+			if (!parseRead) {
+				try {
+					XMLStreamReader r = seek("parse");
+					if (r != null) {
+						parse = readText(r);
+						r.close();
+					}
+				} catch (XMLStreamException e) {
+					throw new IOException("Malformed parse in sentence " + index, e);
+				}
+				parseRead = true;
+			}
+			return parse;
+		}
+
+		public List<XMLDependency> getBasicDependencies() throws IOException {
+			return getDependencies("basic-dependencies");
+		}
+
+		public List<XMLDependency> getCollapsedDependencies() throws IOException {
+			return getDependencies("collapsed-dependencies");
+		}
+
+		public List<XMLDependency> getCollapsedCCProcessedDependencies() throws IOException {
+			return getDependencies("collapsed-ccprocessed-dependencies");
+		}
+
+		List<XMLDependency> getDependencies(String type) throws IOException {
+			List<XMLDependency> deps = dependencies.get(type);
+			if (deps == null) {
+				deps = new ArrayList<XMLDependency>();
+				try {
+					XMLStreamReader r = seek(type);
+					if (r != null) {
+						while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+							deps.add(readDependency(r));
+						}
+						r.close();
+					}
+				} catch (XMLStreamException e) {
+					throw new IOException("Malformed " + type + " in sentence " + index, e);
+				}
+				dependencies.put(type, deps);
+			}
+			return deps;
+		}
+
+		/**
+		 * open a reader on the start tag of the named section of the
+		 * sentence, and release its buffer, since it is only decoded once
+		 *
+		 * @return the reader, or null if the sentence has no such section
+		 */
+		XMLStreamReader seek(String name) throws XMLStreamException {
+			String xml = sections.remove(name);
+			if (xml == null) {
+				return null;
+			}
+			return openFragment(xml);
+		}
+
+		static XMLToken readToken(XMLStreamReader r) throws XMLStreamException {
+			XMLToken token = new XMLToken();
+			String id = r.getAttributeValue(null, "id");
+			if (id != null) {
+				token.index = Integer.parseInt(id);
+			}
+			while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				String name = r.getLocalName();
+				if (name.equals("Timex")) {
+					// the id and type are attributes, the value is the text
+					token.timex = r.getAttributeValue(null, "tid");
+					token.timexType = r.getAttributeValue(null, "type");
+					token.timexValue = readText(r);
+					continue;
+				}
+				String text = readText(r);
+				if (name.equals("word")) {
+					token.word = text;
+				} else if (name.equals("lemma")) {
+					token.lemma = text;
+				} else if (name.equals("CharacterOffsetBegin")) {
+					token.begin = Integer.parseInt(text);
+				} else if (name.equals("CharacterOffsetEnd")) {
+					token.end = Integer.parseInt(text);
+				} else if (name.equals("POS")) {
+					token.pos = text;
+				} else if (name.equals("NER")) {
+					token.ner = text;
+				} else if (name.equals("NormalizedNER")) {
+					token.normalizedNER = text;
+				}
+			}
+			return token;
+		}
+
+		static XMLDependency readDependency(XMLStreamReader r) throws XMLStreamException {
+			XMLDependency dep = new XMLDependency();
+			dep.type = r.getAttributeValue(null, "type");
+			while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				String name = r.getLocalName();
+				// CoreNLP puts the index in an attribute and the word in the
+				// text, addDependencyToXML() puts the index in the text
+				String idx = r.getAttributeValue(null, "idx");
+				String text = readText(r);
+				int value = Integer.parseInt(idx != null ? idx : text);
+				if (name.equals("governor")) {
+					dep.governor = value;
+				} else if (name.equals("dependent")) {
+					dep.dependent = value;
+				}
+			}
+			return dep;
+		}
+	}
+
+	/**
+	 * fields are null (or -1) if they were not written
+	 */
+	public static class XMLToken {
+		public int index = -1;
+		public String word, lemma, pos, ner, normalizedNER;
+		// Timex id, type (e.g. DATE) and normalized value
+		public String timex, timexType, timexValue;
+		public int begin = -1, end = -1;
+	}
+
+	/**
+	 * governor and dependent are 1-based token indexes, and the governor of
+	 * the "root" dependency is 0
+	 */
+	public static class XMLDependency {
+		public String type;
+		public int governor, dependent;
+	}
+
+	/**
+	 * start and end are 1-based token indexes (end exclusive)
+	 */
+	public static class XMLMention {
+		public boolean representative;
+		public int sentence, start, end, head;
+	}
+}
@@ -0,0 +1,127 @@
+//
+// These are the tools used to annotate Annotated Gigaword (Napoles,
+// Gormley, and Van Durme, 2012) using a modified Stanford CoreNLP
+// pipeline. The current version here is StanfordCoreNLP v.1.3.2. The
+// primary modification is to use parse trees as input (instead of
+// parsing sentences using the Stanford parser/grammar). The pipeline
+// is also modified to print the root dependency.
+//
+// MemoCache is a bounded cache that can be shared between threads and
+// counts its hits and misses. Keys are split by hash between segments,
+// each a least-recently-used map with its own lock, so that threads
+// looking up different keys rarely wait for each other.
+//
+
+package edu.jhu.annotation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MemoCache<K, V> {
+	static final int SEGMENTS = 16;
+
+	String name;
+	int capacity;
+	List<LinkedHashMap<K, V>> segments = new ArrayList<LinkedHashMap<K, V>>();
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            used when printing statistics
+	 * @param capacity
+	 *            maximum number of entries, split evenly between the
+	 *            segments, so the least recently used entry of a segment is
+	 *            evicted rather than that of the whole cache
+	 */
+	public MemoCache(String name, int capacity) {
+		this.name = name;
+		this.capacity = capacity;
+		int count = Math.max(1, Math.min(SEGMENTS, capacity));
+		for (int i = 0; i < count; i++) {
+			final int segmentCapacity = capacity / count + (i < capacity % count ? 1 : 0);
+			// access order, so the eldest entry is the least recently used
+			segments.add(new LinkedHashMap<K, V>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					return size() > segmentCapacity;
+				}
+			});
+		}
+	}
+
+	LinkedHashMap<K, V> segment(K key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments.get((h & 0x7fffffff) % segments.size());
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value, or null (counted as a miss) if there is none
+	 */
+	public V get(K key) {
+		LinkedHashMap<K, V> segment = segment(key);
+		V value;
+		synchronized (segment) {
+			value = segment.get(key);
+		}
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * count a hit for a lookup the caller answered without the cache, e.g. a
+	 * repeat of a key it already looked up
+	 */
+	public void countHit() {
+		hits.incrementAndGet();
+	}
+
+	public void put(K key, V value) {
+		LinkedHashMap<K, V> segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, value);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (LinkedHashMap<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long h = hits.get();
+		long m = misses.get();
+		if (h + m == 0) {
+			return 0;
+		}
+		return (double) h / (h + m);
+	}
+
+	public String toString() {
+		long h = hits.get();
+		long m = misses.get();
+		return String.format("%s cache: %d hits, %d misses (%.1f%% hit rate), %d/%d entries",
+				name, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), size(), capacity);
+	}
+}
@@ -0,0 +1,137 @@
+//
+// These are the tools used to annotate Annotated Gigaword (Napoles,
+// Gormley, and Van Durme, 2012) using a modified Stanford CoreNLP
+// pipeline. The current version here is StanfordCoreNLP v.1.3.2. The
+// primary modification is to use parse trees as input (instead of
+// parsing sentences using the Stanford parser/grammar). The pipeline
+// is also modified to print the root dependency.
+//
+// ReorderBuffer writes the output of documents that finish out of order
+// in their input order. Output that cannot be written yet is held in
+// memory up to a limit, and past it is spilled to a temporary file.
+//
+
+package edu.jhu.annotation;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReorderBuffer {
+	OutputStream out;
+	long memoryLimit;
+	long next = 0;
+	Map<Long, byte[]> buffered = new HashMap<Long, byte[]>();
+	long bufferedBytes = 0;
+	// offset and length in the spill file, by sequence number
+	Map<Long, long[]> spilled = new HashMap<Long, long[]>();
+	File spillFile = null;
+	RandomAccessFile spill = null;
+	boolean debug = false;
+
+	/**
+	 * @param out
+	 * @param memoryLimit
+	 *            bytes of output to hold in memory before spilling to disk
+	 * @param debug
+	 */
+	public ReorderBuffer(OutputStream out, long memoryLimit, boolean debug) {
+		this.out = out;
+		this.memoryLimit = memoryLimit;
+		this.debug = debug;
+	}
+
+	/**
+	 * add the output of a document, and write it along with any buffered
+	 * output that follows it if it is the next to be written
+	 *
+	 * @param sequence
+	 *            position of the document in the input, starting at 0
+	 * @param output
+	 * @return the number of documents written, so that a caller can limit
+	 *         how far reading gets ahead of the output
+	 * @throws IOException
+	 */
+	public synchronized int add(long sequence, byte[] output)
+			throws IOException {
+		if (sequence != next) {
+			if (bufferedBytes + output.length <= memoryLimit) {
+				buffered.put(sequence, output);
+				bufferedBytes += output.length;
+			} else {
+				spill(sequence, output);
+			}
+			return 0;
+		}
+		long first = next;
+		out.write(output);
+		next++;
+		while (true) {
+			byte[] b = buffered.remove(next);
+			if (b != null) {
+				bufferedBytes -= b.length;
+			} else if (spilled.containsKey(next)) {
+				b = unspill(next);
+			} else {
+				break;
+			}
+			out.write(b);
+			next++;
+		}
+		out.flush();
+		return (int) (next - first);
+	}
+
+	void spill(long sequence, byte[] output) throws IOException {
+		if (spill == null) {
+			spillFile = File.createTempFile("gigaword-reorder", ".tmp");
+			spillFile.deleteOnExit();
+			spill = new RandomAccessFile(spillFile, "rw");
+			if (debug) {
+				System.err.println("Spilling output to " + spillFile);
+			}
+		}
+		long offset = spill.length();
+		spill.seek(offset);
+		spill.write(output);
+		spilled.put(sequence, new long[] { offset, output.length });
+	}
+
+	byte[] unspill(long sequence) throws IOException {
+		long[] location = spilled.remove(sequence);
+		byte[] b = new byte[(int) location[1]];
+		spill.seek(location[0]);
+		spill.readFully(b);
+		if (spilled.isEmpty()) {
+			// everything in the file has been written, so reuse it
+			spill.setLength(0);
+		}
+		return b;
+	}
+
+	/**
+	 * @return the number of documents that have been added but not written
+	 */
+	public synchronized int pending() {
+		return buffered.size() + spilled.size();
+	}
+
+	/**
+	 * delete the spill file
+	 *
+	 * @throws IOException
+	 *             if output is still waiting for an earlier document, which
+	 *             is then discarded
+	 */
+	public synchronized void close() throws IOException {
+		out.flush();
+		if (spill != null) {
+			spill.close();
+			spillFile.delete();
+		}
+		if (pending() > 0) {
+			throw new IOException("Output of " + pending()
+					+ " documents was never written, waiting for document " + next);
+		}
+	}
+}